@@ -0,0 +1,193 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Vincent Zhang/PhoenixLAB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package co.phoenixlab.dn.dnt;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Bookkeeping tables kept alongside the converted data so that an interrupted conversion can be resumed
+ * and so that rows skipped in quarantine mode are not silently lost.
+ * <p>
+ * Journal writes are issued on the same connection as the row inserts and are never committed on their own,
+ * so a checkpoint only becomes visible together with the batch of rows it describes.
+ */
+class ConversionJournal {
+
+    static final String JOURNAL_TABLE = "_dnt2sqlite_journal";
+    static final String QUARANTINE_TABLE = "_dnt2sqlite_quarantine";
+
+    enum Status {
+        IN_PROGRESS,
+        COMPLETE
+    }
+
+    private final Connection dbConnection;
+
+    public ConversionJournal(Connection dbConnection) throws SQLException {
+        this.dbConnection = dbConnection;
+        try (Statement statement = dbConnection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS \"" + JOURNAL_TABLE + "\" (" +
+                    "\"File\" TEXT PRIMARY KEY, " +
+                    "\"TableName\" TEXT, " +
+                    "\"FileSize\" INTEGER, " +
+                    "\"LastModified\" INTEGER, " +
+                    "\"RowCount\" INTEGER, " +
+                    "\"CommittedRows\" INTEGER, " +
+                    "\"Status\" TEXT);");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS \"" + QUARANTINE_TABLE + "\" (" +
+                    "\"File\" TEXT, " +
+                    "\"TableName\" TEXT, " +
+                    "\"PhysicalRow\" INTEGER, " +
+                    "\"RowId\" INTEGER, " +
+                    "\"Error\" TEXT);");
+        }
+    }
+
+    /**
+     * @return The journal entry for the given file, or null if there is none or the file has changed on disk
+     * since the entry was written
+     */
+    public Entry lookup(Path dntFile) throws SQLException, IOException {
+        String query = "SELECT \"TableName\", \"FileSize\", \"LastModified\", \"RowCount\", \"CommittedRows\", " +
+                "\"Status\" FROM \"" + JOURNAL_TABLE + "\" WHERE \"File\" = ?;";
+        try (PreparedStatement statement = dbConnection.prepareStatement(query)) {
+            statement.setString(1, key(dntFile));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                if (resultSet.getLong(2) != Files.size(dntFile) ||
+                        resultSet.getLong(3) != Files.getLastModifiedTime(dntFile).toMillis()) {
+                    return null;
+                }
+                return new Entry(resultSet.getString(1),
+                        resultSet.getLong(4),
+                        resultSet.getLong(5),
+                        Status.valueOf(resultSet.getString(6)));
+            }
+        }
+    }
+
+    /**
+     * Starts a fresh journal entry for the given file and clears its rows quarantined by earlier conversions.
+     */
+    public void begin(Path dntFile, String tableName, long rowCount) throws SQLException, IOException {
+        deleteEntries(dbConnection, QUARANTINE_TABLE, dntFile);
+        String update = "INSERT OR REPLACE INTO \"" + JOURNAL_TABLE + "\" (\"File\", \"TableName\", \"FileSize\", " +
+                "\"LastModified\", \"RowCount\", \"CommittedRows\", \"Status\") VALUES (?, ?, ?, ?, ?, 0, ?);";
+        try (PreparedStatement statement = dbConnection.prepareStatement(update)) {
+            statement.setString(1, key(dntFile));
+            statement.setString(2, tableName);
+            statement.setLong(3, Files.size(dntFile));
+            statement.setLong(4, Files.getLastModifiedTime(dntFile).toMillis());
+            statement.setLong(5, rowCount);
+            statement.setString(6, Status.IN_PROGRESS.name());
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Removes the journal entry and quarantined rows for the given file, if the bookkeeping tables exist at all.
+     * Used by loads that replace a table without checkpointing it.
+     */
+    static void forget(Connection dbConnection, Path dntFile) throws SQLException {
+        deleteEntries(dbConnection, JOURNAL_TABLE, dntFile);
+        deleteEntries(dbConnection, QUARANTINE_TABLE, dntFile);
+    }
+
+    private static void deleteEntries(Connection dbConnection, String table, Path dntFile) throws SQLException {
+        String query = "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?;";
+        try (PreparedStatement statement = dbConnection.prepareStatement(query)) {
+            statement.setString(1, table);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return;
+                }
+            }
+        }
+        String update = "DELETE FROM \"" + table + "\" WHERE \"File\" = ?;";
+        try (PreparedStatement statement = dbConnection.prepareStatement(update)) {
+            statement.setString(1, key(dntFile));
+            statement.executeUpdate();
+        }
+    }
+
+    public void checkpoint(Path dntFile, long committedRows) throws SQLException {
+        update(dntFile, committedRows, Status.IN_PROGRESS);
+    }
+
+    public void complete(Path dntFile, long committedRows) throws SQLException {
+        update(dntFile, committedRows, Status.COMPLETE);
+    }
+
+    private void update(Path dntFile, long committedRows, Status status) throws SQLException {
+        String update = "UPDATE \"" + JOURNAL_TABLE + "\" SET \"CommittedRows\" = ?, \"Status\" = ? WHERE \"File\" = ?;";
+        try (PreparedStatement statement = dbConnection.prepareStatement(update)) {
+            statement.setLong(1, committedRows);
+            statement.setString(2, status.name());
+            statement.setString(3, key(dntFile));
+            statement.executeUpdate();
+        }
+    }
+
+    public void quarantine(Path dntFile, String tableName, long physicalRow, long rowId, String reason)
+            throws SQLException {
+        String update = "INSERT INTO \"" + QUARANTINE_TABLE + "\" (\"File\", \"TableName\", \"PhysicalRow\", " +
+                "\"RowId\", \"Error\") VALUES (?, ?, ?, ?, ?);";
+        try (PreparedStatement statement = dbConnection.prepareStatement(update)) {
+            statement.setString(1, key(dntFile));
+            statement.setString(2, tableName);
+            statement.setLong(3, physicalRow);
+            statement.setLong(4, rowId);
+            statement.setString(5, reason);
+            statement.executeUpdate();
+        }
+    }
+
+    static String key(Path dntFile) {
+        return dntFile.toAbsolutePath().normalize().toString().replace('\\', '/');
+    }
+
+    static class Entry {
+        final String tableName;
+        final long rowCount;
+        final long committedRows;
+        final Status status;
+
+        public Entry(String tableName, long rowCount, long committedRows, Status status) {
+            this.tableName = tableName;
+            this.rowCount = rowCount;
+            this.committedRows = committedRows;
+            this.status = status;
+        }
+    }
+}
@@ -32,6 +32,8 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Properties;
 import java.util.Scanner;
@@ -50,12 +52,15 @@ public class Dnt2Sqlite {
     }
 
     private final DoubleConsumer noOpListener;
+    private final String jdbcUri;
     private Connection connection;
+    private boolean checkpoint;
+    private boolean quarantine;
 
     public Dnt2Sqlite(String jdbcUriSuffix) throws SQLException {
         noOpListener = d -> {
         };
-        String jdbcUri = "jdbc:sqlite:" + jdbcUriSuffix;
+        jdbcUri = "jdbc:sqlite:" + jdbcUriSuffix;
         Properties properties = new Properties();
         properties.put("useUnicode", "true");
         properties.put("characterEncoding", "UTF-8");
@@ -68,6 +73,10 @@ public class Dnt2Sqlite {
 
     public static void main(String[] args) throws IOException, SQLException {
         Scanner scanner = new Scanner(System.in);
+        if (Arrays.asList(args).contains("--catalog")) {
+            catalog(scanner);
+            return;
+        }
         System.out.println("Would you like to collapse common tables (e.g. item)? [Y/(N)]");
         String line = scanner.nextLine();
         boolean collapse = false;
@@ -75,6 +84,10 @@ public class Dnt2Sqlite {
             collapse = true;
         }
         System.out.println("DNT2SQLITE will " + (collapse ? "collapse" : "not collapse") + " common tables.");
+        boolean checkpoint = Arrays.asList(args).contains("--checkpoint");
+        System.out.println("DNT2SQLITE will " + (checkpoint ? "checkpoint" : "not checkpoint") + " conversions.");
+        boolean quarantine = Arrays.asList(args).contains("--quarantine");
+        System.out.println("DNT2SQLITE will " + (quarantine ? "quarantine" : "abort on") + " malformed rows.");
         System.out.println("Enter the DNT files to read. Enter \"done\" when finished.");
         List<String> files = new ArrayList<>();
         while (!"done".equals(line = scanner.nextLine())) {
@@ -85,6 +98,22 @@ public class Dnt2Sqlite {
         String out = scanner.nextLine();
         Path outPath = Paths.get(out);
         Dnt2Sqlite dnt2Sqlite = new Dnt2Sqlite(outPath);
+        dnt2Sqlite.setCheckpoint(checkpoint);
+        dnt2Sqlite.setQuarantine(quarantine);
+        //  Columns to index after loading, full text for TEXT columns and B-tree otherwise
+        IndexBuilder indexBuilder = dnt2Sqlite.indexBuilder();
+        for (String arg : args) {
+            if (!arg.startsWith("--index=")) {
+                continue;
+            }
+            String column = arg.substring("--index=".length());
+            int dot = column.indexOf('.');
+            if (dot <= 0 || dot == column.length() - 1) {
+                System.out.println("Ignoring " + arg + ", expected --index=table.column");
+                continue;
+            }
+            indexBuilder.add(column.substring(0, dot), column.substring(dot + 1));
+        }
         long startTime = System.currentTimeMillis();
         try {
             Predicate<Path> endsWithDnt = f -> f.getFileName().toString().endsWith(".dnt");
@@ -106,6 +135,7 @@ public class Dnt2Sqlite {
                             convert(p, dnt2Sqlite, collapseF);
                         }
                     });
+            buildIndexes(indexBuilder);
         } finally {
             System.out.println();
             System.out.printf("Took %,.2f sec\n", (System.currentTimeMillis() - startTime) / 1000D);
@@ -114,6 +144,61 @@ public class Dnt2Sqlite {
         }
     }
 
+    private static void catalog(Scanner scanner) throws IOException, SQLException {
+        System.out.println("Enter the DNT files or directories to catalog. Enter \"done\" when finished.");
+        List<Path> files = new ArrayList<>();
+        String line;
+        while (!"done".equals(line = scanner.nextLine())) {
+            Path p = Paths.get(line);
+            if (Files.isDirectory(p)) {
+                try (Stream<Path> fs = Files.walk(p, 1)) {
+                    fs.filter(Files::isRegularFile).
+                            filter(f -> f.getFileName().toString().endsWith(".dnt") ||
+                                    f.getFileName().toString().endsWith(".ext")).
+                            forEach(files::add);
+                }
+            } else {
+                files.add(p);
+            }
+        }
+        System.out.println("Found " + files.size() + " files");
+        System.out.println("Enter the target SQLite or .json file to write the catalog to");
+        String out = scanner.nextLine();
+        scanner.close();
+        long startTime = System.currentTimeMillis();
+        DntCatalog catalog = DntCatalog.scan(files);
+        if (out.toLowerCase().endsWith(".json")) {
+            catalog.writeJson(Paths.get(out));
+        } else {
+            Dnt2Sqlite dnt2Sqlite = new Dnt2Sqlite(Paths.get(out));
+            try {
+                catalog.writeTo(dnt2Sqlite.connection);
+            } finally {
+                dnt2Sqlite.close();
+            }
+        }
+        System.out.printf("Cataloged %,d tables, took %,.2f sec\n",
+                catalog.getEntries().size(), (System.currentTimeMillis() - startTime) / 1000D);
+    }
+
+    private static void buildIndexes(IndexBuilder indexBuilder) {
+        try {
+            for (IndexBuilder.Result result : indexBuilder.build(Runtime.getRuntime().availableProcessors())) {
+                System.out.println();
+                String name = result.indexName != null ? result.indexName :
+                        result.tableName + "." + String.join(",", result.columnNames);
+                if (result.isOk()) {
+                    System.out.printf("[  OK  ] Indexing %s (took %,.2f sec, waited %,.2f sec)",
+                            name, result.millis / 1000D, result.waitMillis / 1000D);
+                } else {
+                    System.out.printf("[ FAIL ] Indexing %s: %s", name, result.error);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private static void convert(Path f, Dnt2Sqlite dnt2Sqlite, boolean collapse) {
         try {
             System.out.println();
@@ -122,11 +207,38 @@ public class Dnt2Sqlite {
                     d * 100D, f.getFileName().toString()), collapse);
             System.out.printf("\r[  OK  ] Converting %s (took %,.2f sec)",
                     f.getFileName().toString(), (System.currentTimeMillis() - startTime) / 1000D);
-        } catch (SQLException | IOException e) {
+        } catch (SQLException | IOException | RuntimeException e) {
+            if (dnt2Sqlite.quarantine) {
+                System.out.printf("\r[ FAIL ] Converting %s", f.getFileName().toString());
+                System.err.println();
+                e.printStackTrace();
+                return;
+            }
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Sets whether completed files and committed row batches are recorded in a journal table in the output
+     * database. When set, files already fully converted are skipped and partially converted files resume from
+     * their last committed batch.
+     */
+    public void setCheckpoint(boolean checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Sets whether malformed rows are logged to a quarantine table and skipped rather than aborting the
+     * conversion. Rows that cannot be parsed end the conversion of their file, since the start of the next row
+     * cannot be found.
+     */
+    public void setQuarantine(boolean quarantine) {
+        this.quarantine = quarantine;
+    }
+
     public void convert(Path dntFileIn)
             throws SQLException, IOException {
         convert(dntFileIn, noOpListener, false);
@@ -137,6 +249,24 @@ public class Dnt2Sqlite {
         process(dntFileIn, connection, progressListener, collapse);
     }
 
+    /**
+     * Reads the headers of the given files in parallel and records their schemas, row counts and sizes in the
+     * catalog table of the output database, without converting any rows.
+     */
+    public DntCatalog catalog(Collection<Path> dntFilesIn) throws SQLException {
+        DntCatalog catalog = DntCatalog.scan(dntFilesIn);
+        catalog.writeTo(connection);
+        return catalog;
+    }
+
+    /**
+     * Creates a builder for full text and B-tree indexes over tables already converted into the output database.
+     * Convert all files before building, since the builds use their own connections.
+     */
+    public IndexBuilder indexBuilder() {
+        return new IndexBuilder(jdbcUri);
+    }
+
     public Connection readDntAsInMemoryDb(Path dntFileIn)
             throws SQLException, IOException {
         return readDntAsInMemoryDb(dntFileIn, noOpListener, false);
@@ -152,7 +282,9 @@ public class Dnt2Sqlite {
     private void process(Path dntFileIn, Connection connection, DoubleConsumer progressListener, boolean collapse)
             throws SQLException, IOException {
         String override = collapse ? getOverride(dntFileIn.getFileName().toString().toLowerCase()) : null;
-        Dnt2SqliteReader reader = new Dnt2SqliteReader(dntFileIn, connection, override);
+        ConversionJournal journal = checkpoint || quarantine ? new ConversionJournal(connection) : null;
+        Dnt2SqliteReader reader = new Dnt2SqliteReader(dntFileIn, connection, override,
+                journal, checkpoint, quarantine);
         reader.read(progressListener);
     }
 
@@ -24,6 +24,7 @@
 
 package co.phoenixlab.dn.dnt;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
@@ -44,18 +45,35 @@ class Dnt2SqliteReader {
 
     private static final int MAGIC_NUMBER = 0x00000000;
     private static final String ROW_ID = "RowId";
+    private static final int EXT_HEADER_SIZE = 12;
+    private static final int EXT_COLUMN_HEADER_SIZE = 68;
     private final Path dntFile;
     private final String tableName;
     private final Connection dbConnection;
     private byte[] stringByteCache;
     private boolean ext = false;
     private String tableOverride;
+    private final ConversionJournal journal;
+    private final boolean checkpoint;
+    private final boolean quarantine;
+    private ConversionJournal.Entry resumeEntry;
 
     public Dnt2SqliteReader(Path dntFile, Connection dbConnection) {
         this(dntFile, dbConnection, null);
     }
 
     public Dnt2SqliteReader(Path dntFile, Connection dbConnection, String tableOverride) {
+        this(dntFile, dbConnection, tableOverride, null, false, false);
+    }
+
+    /**
+     * @param journal    Journal to record progress and quarantined rows in, required if either checkpoint or
+     *                   quarantine is set
+     * @param checkpoint Whether to record committed rows in the journal and resume from the last committed batch
+     * @param quarantine Whether to log and skip malformed rows instead of aborting the conversion
+     */
+    public Dnt2SqliteReader(Path dntFile, Connection dbConnection, String tableOverride,
+                            ConversionJournal journal, boolean checkpoint, boolean quarantine) {
         this.dntFile = dntFile;
         String tableName = dntFile.getFileName().toString();
         if (tableName.endsWith(".dnt")) {
@@ -70,11 +88,24 @@ class Dnt2SqliteReader {
         this.tableName = Optional.ofNullable(tableOverride).orElse(tableName);
         this.dbConnection = dbConnection;
         this.stringByteCache = new byte[1024];
+        this.journal = journal;
+        this.checkpoint = checkpoint;
+        this.quarantine = quarantine;
     }
 
     public void read(DoubleConsumer progressListener)
             throws SQLException, IOException {
         progressListener.accept(0D);
+        if (checkpoint) {
+            resumeEntry = journal.lookup(dntFile);
+            if (resumeEntry != null && !resumeEntry.tableName.equals(tableName)) {
+                resumeEntry = null;
+            }
+            if (resumeEntry != null && resumeEntry.status == ConversionJournal.Status.COMPLETE) {
+                progressListener.accept(1D);
+                return;
+            }
+        }
         try (LittleEndianDataInputStream inputStream = new LittleEndianDataInputStream(
                 new DataInputStream(
                         Files.newInputStream(dntFile, StandardOpenOption.READ)))) {
@@ -87,28 +118,61 @@ class Dnt2SqliteReader {
         }
     }
 
+    /**
+     * Reads only the file and column headers, without touching the database or the row data.
+     */
+    public Header readHeader() throws IOException {
+        //  Small buffer, the headers are usually a tiny fraction of the file
+        try (LittleEndianDataInputStream inputStream = new LittleEndianDataInputStream(
+                new DataInputStream(
+                        new BufferedInputStream(
+                                Files.newInputStream(dntFile, StandardOpenOption.READ), 4096)))) {
+            return ext ? readExtHeader(inputStream) : readDntHeader(inputStream);
+        }
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
     private void readDnt(DoubleConsumer progressListener, LittleEndianDataInputStream inputStream)
             throws IOException, SQLException {
-        validateMagicNumber(inputStream.readInt());
-        Column[] columns = new Column[inputStream.readUnsignedShort() + 1];
-        long rowCount = inputStream.readUnsignedInt();
-        readColumnHeaders(inputStream, columns);
+        Header header = readDntHeader(inputStream);
         setUpDatabase();
-        dropTableIfExistsAndCreate(columns);
-        readRows(progressListener, inputStream, columns, rowCount);
+        long startRow = prepareTable(header.columns, header.rowCount);
+        readRows(progressListener, inputStream, header.columns, header.rowCount, startRow);
         progressListener.accept(1D);
     }
 
     private void readExt(DoubleConsumer progressListener, LittleEndianDataInputStream inputStream)
             throws IOException, SQLException {
+        Header header = readExtHeader(inputStream);
+        setUpDatabase();
+        long startRow = prepareTable(header.columns, header.rowCount);
+        readRows(progressListener, inputStream, header.columns, header.rowCount, startRow);
+        progressListener.accept(1D);
+    }
+
+    private Header readDntHeader(LittleEndianDataInputStream inputStream) throws IOException {
+        validateMagicNumber(inputStream.readInt());
+        Column[] columns = new Column[inputStream.readUnsignedShort() + 1];
+        long rowCount = inputStream.readUnsignedInt();
+        readColumnHeaders(inputStream, columns);
+        return new Header(columns, rowCount);
+    }
+
+    private Header readExtHeader(LittleEndianDataInputStream inputStream) throws IOException {
         int unknown = inputStream.readInt();
-        Column[] columns = new Column[inputStream.readInt() + 1];
+        long columnCount = Integer.toUnsignedLong(inputStream.readInt());
+        //  Guard the allocation, a stray file can claim any column count
+        if (EXT_HEADER_SIZE + columnCount * EXT_COLUMN_HEADER_SIZE > Files.size(dntFile)) {
+            throw new InvalidDntException(dntFile,
+                    String.format("Column count %d doesn't fit in %d bytes", columnCount, Files.size(dntFile)));
+        }
+        Column[] columns = new Column[(int) columnCount + 1];
         long rowCount = inputStream.readUnsignedInt();
         readExtColumnHeaders(inputStream, columns);
-        setUpDatabase();
-        dropTableIfExistsAndCreate(columns);
-        readRows(progressListener, inputStream, columns, rowCount);
-        progressListener.accept(1D);
+        return new Header(columns, rowCount);
     }
 
     private void setUpDatabase() throws SQLException {
@@ -117,7 +181,38 @@ class Dnt2SqliteReader {
         }
     }
 
-    private void readRows(DoubleConsumer progressListener, LittleEndianDataInputStream inputStream, Column[] columns, long rowCount) throws SQLException, IOException {
+    /**
+     * Creates the data table, or picks up where a previous conversion of the same file left off.
+     *
+     * @return The number of physical rows already committed, which are read but not inserted again
+     */
+    private long prepareTable(Column[] columns, long rowCount) throws SQLException, IOException {
+        if (resumeEntry != null) {
+            createTable(columns, false);
+            return resumeEntry.committedRows;
+        }
+        //  Reset the table, the journal entry and the file's quarantined rows together so a crash can't leave one
+        //  without the others. Loads without checkpointing still forget any old entry, which would otherwise vouch
+        //  for the replaced table.
+        dbConnection.setAutoCommit(false);
+        try {
+            createTable(columns, tableOverride == null);
+            if (checkpoint) {
+                journal.begin(dntFile, tableName, rowCount);
+            } else {
+                ConversionJournal.forget(dbConnection, dntFile);
+            }
+            dbConnection.commit();
+        } catch (SQLException | IOException | RuntimeException e) {
+            dbConnection.rollback();
+            dbConnection.setAutoCommit(true);
+            throw e;
+        }
+        return 0;
+    }
+
+    private void readRows(DoubleConsumer progressListener, LittleEndianDataInputStream inputStream, Column[] columns,
+                          long rowCount, long startRow) throws SQLException, IOException {
         dbConnection.setAutoCommit(false);
         StringJoiner columnJoiner = new StringJoiner(",", "(", ")");
         StringJoiner valJoiner = new StringJoiner(",", "(", ")");
@@ -135,18 +230,48 @@ class Dnt2SqliteReader {
         double rC = (double) rowCount;
         try (PreparedStatement statement = dbConnection.prepareStatement(query)) {
             for (; row < rowCount; row++) {
-                lastRowId = readRowData(inputStream, columns, statement);
-                statement.executeUpdate();
+                try {
+                    lastRowId = readRowData(inputStream, columns, statement);
+                } catch (IOException | RuntimeException e) {
+                    if (!quarantine) {
+                        throw e;
+                    }
+                    //  Rows are variable length, so there's no way to find the start of the next row
+                    quarantine(row, -1, e.toString());
+                    break;
+                }
+                if (row < startRow) {
+                    continue;
+                }
+                try {
+                    //  Collapsed tables share RowIds across files on purpose, elsewhere an ignored row is lost data
+                    if (statement.executeUpdate() == 0 && quarantine && tableOverride == null) {
+                        quarantine(row, lastRowId, "ignored (duplicate RowId)");
+                    }
+                } catch (SQLException e) {
+                    if (!quarantine) {
+                        throw e;
+                    }
+                    quarantine(row, lastRowId, e.toString());
+                }
                 if (row % interval == 0) {
+                    if (checkpoint) {
+                        journal.checkpoint(dntFile, row + 1);
+                    }
                     dbConnection.commit();
                     progressListener.accept(row / rC);
                 }
             }
         } catch (Exception e) {
             System.err.println("failed on physical row " + row + ", rowId " + lastRowId);
+            dbConnection.rollback();
+            dbConnection.setAutoCommit(true);
             throw e;
         }
         progressListener.accept(1D);
+        if (checkpoint) {
+            journal.complete(dntFile, row);
+        }
         dbConnection.commit();
         dbConnection.setAutoCommit(true);
     }
@@ -192,6 +317,11 @@ class Dnt2SqliteReader {
         return rowId;
     }
 
+    private void quarantine(long row, long rowId, String reason) throws SQLException {
+        System.err.println("quarantined physical row " + row + ", rowId " + rowId + " of " + dntFile + ": " + reason);
+        journal.quarantine(dntFile, tableName, row, rowId, reason);
+    }
+
     private String decode(byte[] data, int start, int end) {
         if (start == end) {
             return "";
@@ -246,7 +376,7 @@ class Dnt2SqliteReader {
         }
     }
 
-    private void dropTableIfExistsAndCreate(Column[] columns) throws SQLException {
+    private void createTable(Column[] columns, boolean dropExisting) throws SQLException {
         StringJoiner createTableJoiner = new StringJoiner(", ",
             "CREATE TABLE IF NOT EXISTS \"" + tableName + "\" (",
             ");");
@@ -256,7 +386,12 @@ class Dnt2SqliteReader {
             createTableJoiner.add("\"" + column.name + "\" " + column.dataType);
         }
         String update = createTableJoiner.toString();
-        if (tableOverride == null) {
+        //  Rows are about to change, so drop the table's full text index. As an external content index it would
+        //  otherwise silently return stale or missing rows.
+        try (Statement statement = dbConnection.createStatement()) {
+            statement.executeUpdate("DROP TABLE IF EXISTS \"" + tableName + IndexBuilder.FTS_SUFFIX + "\";");
+        }
+        if (dropExisting) {
             //  Drop existing data table and create new data table
             try (Statement statement = dbConnection.createStatement()) {
                 statement.executeUpdate("DROP TABLE IF EXISTS \"" + tableName + "\";");
@@ -311,6 +446,16 @@ class Dnt2SqliteReader {
         }
     }
 
+    class Header {
+        final Column[] columns;
+        final long rowCount;
+
+        public Header(Column[] columns, long rowCount) {
+            this.columns = columns;
+            this.rowCount = rowCount;
+        }
+    }
+
     class Column {
         final String name;
         final DataType dataType;
@@ -0,0 +1,247 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Vincent Zhang/PhoenixLAB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package co.phoenixlab.dn.dnt;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.StringJoiner;
+import java.util.stream.Collectors;
+
+/**
+ * Catalogs the tables in a set of DNT/EXT files by reading only their headers, so the cost is proportional
+ * to the size of the column headers rather than the size of the files.
+ */
+public class DntCatalog {
+
+    static final String CATALOG_TABLE = "_dnt2sqlite_catalog";
+
+    private final List<Entry> entries;
+
+    private DntCatalog(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Reads the headers of the given files in parallel. Files whose headers can't be read are reported and left
+     * out of the catalog. Files are keyed the same way as in the conversion journal, so a file given more than
+     * once under different spellings is only cataloged once.
+     */
+    public static DntCatalog scan(Collection<Path> files) {
+        List<Entry> entries = files.stream().
+                map(p -> p.toAbsolutePath().normalize()).
+                distinct().
+                collect(Collectors.toList()).
+                parallelStream().
+                map(DntCatalog::scanFile).
+                filter(Objects::nonNull).
+                collect(Collectors.toList());
+        return new DntCatalog(entries);
+    }
+
+    private static Entry scanFile(Path file) {
+        try {
+            Dnt2SqliteReader reader = new Dnt2SqliteReader(file, null);
+            Dnt2SqliteReader.Header header = reader.readHeader();
+            String[] names = new String[header.columns.length];
+            String[] types = new String[header.columns.length];
+            for (int i = 0; i < header.columns.length; i++) {
+                names[i] = header.columns[i].name;
+                types[i] = header.columns[i].dataType.name();
+            }
+            return new Entry(file, reader.getTableName(), names, types, header.rowCount, Files.size(file));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Unable to read header of " + file + ": " + e);
+            return null;
+        }
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Replaces the contents of the catalog table in the given database with this catalog.
+     */
+    public void writeTo(Connection connection) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        String query = "INSERT OR REPLACE INTO \"" + CATALOG_TABLE + "\" VALUES (?, ?, ?, ?, ?, ?, ?);";
+        try (Statement statement = connection.createStatement();
+             PreparedStatement insert = connection.prepareStatement(query)) {
+            statement.executeUpdate("DROP TABLE IF EXISTS \"" + CATALOG_TABLE + "\";");
+            statement.executeUpdate("CREATE TABLE \"" + CATALOG_TABLE + "\" (" +
+                    "\"File\" TEXT PRIMARY KEY, " +
+                    "\"TableName\" TEXT, " +
+                    "\"ColumnNames\" TEXT, " +
+                    "\"ColumnTypes\" TEXT, " +
+                    "\"RowCount\" INTEGER, " +
+                    "\"ByteSize\" INTEGER, " +
+                    "\"SchemaFingerprint\" TEXT);");
+            for (Entry entry : entries) {
+                insert.setString(1, entry.key);
+                insert.setString(2, entry.tableName);
+                insert.setString(3, toJsonArray(entry.columnNames));
+                insert.setString(4, toJsonArray(entry.columnTypes));
+                insert.setLong(5, entry.rowCount);
+                insert.setLong(6, entry.byteSize);
+                insert.setString(7, entry.schemaFingerprint);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            connection.commit();
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Writes this catalog as a JSON array of objects, one per file.
+     */
+    public void writeJson(Path out) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(out, StandardCharsets.UTF_8)) {
+            writer.write("[");
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                writer.write(i == 0 ? "\n" : ",\n");
+                writer.write("  {\"file\": " + toJsonString(entry.key) +
+                        ", \"tableName\": " + toJsonString(entry.tableName) +
+                        ", \"columnNames\": " + toJsonArray(entry.columnNames) +
+                        ", \"columnTypes\": " + toJsonArray(entry.columnTypes) +
+                        ", \"rowCount\": " + entry.rowCount +
+                        ", \"byteSize\": " + entry.byteSize +
+                        ", \"schemaFingerprint\": " + toJsonString(entry.schemaFingerprint) + "}");
+            }
+            writer.write("\n]\n");
+        }
+    }
+
+    private static String toJsonArray(String[] values) {
+        StringJoiner joiner = new StringJoiner(", ", "[", "]");
+        for (String value : values) {
+            joiner.add(toJsonString(value));
+        }
+        return joiner.toString();
+    }
+
+    private static String toJsonString(String value) {
+        StringBuilder builder = new StringBuilder(value.length() + 2);
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+        return builder.toString();
+    }
+
+    /**
+     * Hashes the ordered column names and types, so files sharing a schema share a fingerprint regardless of
+     * their name or contents.
+     */
+    private static String fingerprint(String[] columnNames, String[] columnTypes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (int i = 0; i < columnNames.length; i++) {
+                digest.update(columnNames[i].getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(columnTypes[i].getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest.digest()) {
+                builder.append(String.format("%02x", b));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required to be supported", e);
+        }
+    }
+
+    public static class Entry {
+        public final Path file;
+        public final String key;
+        public final String tableName;
+        public final String[] columnNames;
+        public final String[] columnTypes;
+        public final long rowCount;
+        public final long byteSize;
+        public final String schemaFingerprint;
+
+        Entry(Path file, String tableName, String[] columnNames, String[] columnTypes, long rowCount,
+              long byteSize) {
+            this.file = file;
+            this.key = ConversionJournal.key(file);
+            this.tableName = tableName;
+            this.columnNames = columnNames;
+            this.columnTypes = columnTypes;
+            this.rowCount = rowCount;
+            this.byteSize = byteSize;
+            this.schemaFingerprint = fingerprint(columnNames, columnTypes);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("file=%s table=%s columns=%d rows=%d bytes=%d fingerprint=%s",
+                    file, tableName, columnNames.length, rowCount, byteSize, schemaFingerprint);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Vincent Zhang/PhoenixLAB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package co.phoenixlab.dn.dnt;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Post-load stage that builds search indexes over already converted tables. Selected TEXT columns of a table
+ * are put into one FTS5 table named {@code <table>_fts}, and every other selected column gets a B-tree index
+ * named {@code <table>_<column>_idx}.
+ * <p>
+ * The FTS5 tables use the trigram tokenizer, so both {@code MATCH} and {@code LIKE}/{@code GLOB} on them serve
+ * substring searches such as {@code LIKE '%fire%'}. Search terms need at least 3 characters to use the index.
+ * They take the data table as external content, so converting into a data table again drops its FTS5 table,
+ * which then has to be built again.
+ * <p>
+ * Each index is built with a single bulk statement in its own transaction once the rows are committed. Tables
+ * are processed concurrently, each on its own connection. SQLite only allows one writer at a time, so the writes
+ * are queued in order on a fair lock; the time spent queued is reported apart from the build time.
+ */
+public class IndexBuilder {
+
+    static final String FTS_SUFFIX = "_fts";
+
+    /**
+     * Only covers writers outside this builder, builds within it are queued on {@link #writeLock}
+     */
+    private static final int BUSY_TIMEOUT_MS = 60 * 1000;
+
+    private final String jdbcUri;
+    private final Map<String, Set<String>> columnsByTable;
+    private final ReentrantLock writeLock;
+
+    IndexBuilder(String jdbcUri) {
+        this.jdbcUri = jdbcUri;
+        this.columnsByTable = new LinkedHashMap<>();
+        this.writeLock = new ReentrantLock(true);
+    }
+
+    /**
+     * Selects columns of a table to index. TEXT columns are full text indexed, other columns get a B-tree index.
+     */
+    public IndexBuilder add(String tableName, String... columnNames) {
+        Set<String> columns = columnsByTable.computeIfAbsent(tableName, k -> new LinkedHashSet<>());
+        Collections.addAll(columns, columnNames);
+        return this;
+    }
+
+    /**
+     * Builds the selected indexes, replacing any that already exist.
+     *
+     * @param threads The maximum number of tables to index at once
+     * @return The outcome of each index build, in the order the tables were added
+     */
+    public List<Result> build(int threads) throws InterruptedException {
+        if (columnsByTable.isEmpty()) {
+            return Collections.emptyList();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, columnsByTable.size())));
+        try {
+            List<Future<List<Result>>> futures = new ArrayList<>();
+            for (Map.Entry<String, Set<String>> entry : columnsByTable.entrySet()) {
+                futures.add(executor.submit(() -> buildTable(entry.getKey(), entry.getValue())));
+            }
+            List<Result> results = new ArrayList<>();
+            int i = 0;
+            for (Map.Entry<String, Set<String>> entry : columnsByTable.entrySet()) {
+                try {
+                    results.addAll(futures.get(i++).get());
+                } catch (ExecutionException e) {
+                    for (String columnName : entry.getValue()) {
+                        results.add(Result.setupFailure(entry.getKey(), columnName, e.getCause()));
+                    }
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<Result> buildTable(String tableName, Set<String> columnNames) {
+        List<Result> results = new ArrayList<>();
+        Properties properties = new Properties();
+        properties.put("useUnicode", "true");
+        properties.put("characterEncoding", "UTF-8");
+        try (Connection connection = DriverManager.getConnection(jdbcUri, properties);
+             Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MS + ";");
+            Map<String, String> columnTypes = readColumnTypes(statement, tableName);
+            List<String> textColumns = new ArrayList<>();
+            for (String columnName : columnNames) {
+                String type = columnTypes.get(columnName);
+                if (type == null) {
+                    results.add(Result.setupFailure(tableName, columnName,
+                            new SQLException("No such column " + columnName + " in " + tableName)));
+                } else if (type.equalsIgnoreCase(Dnt2SqliteReader.DataType.STRING.sqlName)) {
+                    textColumns.add(columnName);
+                } else {
+                    results.add(buildIndex(connection, tableName, columnName));
+                }
+            }
+            if (!textColumns.isEmpty()) {
+                results.add(buildFullText(connection, tableName, textColumns));
+            }
+        } catch (SQLException | RuntimeException e) {
+            //  Report every requested column that didn't get a result of its own
+            Set<String> reported = new LinkedHashSet<>();
+            for (Result result : results) {
+                reported.addAll(result.columnNames);
+            }
+            for (String columnName : columnNames) {
+                if (!reported.contains(columnName)) {
+                    results.add(Result.setupFailure(tableName, columnName, e));
+                }
+            }
+        }
+        return results;
+    }
+
+    private Map<String, String> readColumnTypes(Statement statement, String tableName) throws SQLException {
+        Map<String, String> columnTypes = new LinkedHashMap<>();
+        try (ResultSet resultSet = statement.executeQuery("PRAGMA table_info(\"" + tableName + "\");")) {
+            while (resultSet.next()) {
+                columnTypes.put(resultSet.getString("name"), resultSet.getString("type"));
+            }
+        }
+        if (columnTypes.isEmpty()) {
+            throw new SQLException("No such table " + tableName);
+        }
+        return columnTypes;
+    }
+
+    private Result buildIndex(Connection connection, String tableName, String columnName) {
+        String indexName = tableName + "_" + columnName + "_idx";
+        return buildLocked(connection, tableName, Collections.singletonList(columnName), indexName, Kind.BTREE,
+                statement -> {
+                    statement.executeUpdate("DROP INDEX IF EXISTS \"" + indexName + "\";");
+                    statement.executeUpdate("CREATE INDEX \"" + indexName + "\" ON \"" + tableName +
+                            "\" (\"" + columnName + "\");");
+                });
+    }
+
+    private Result buildFullText(Connection connection, String tableName, List<String> columnNames) {
+        String ftsName = tableName + FTS_SUFFIX;
+        StringBuilder columns = new StringBuilder();
+        for (String columnName : columnNames) {
+            columns.append("\"").append(columnName).append("\", ");
+        }
+        return buildLocked(connection, tableName, columnNames, ftsName, Kind.FULL_TEXT, statement -> {
+            statement.executeUpdate("DROP TABLE IF EXISTS \"" + ftsName + "\";");
+            statement.executeUpdate("CREATE VIRTUAL TABLE \"" + ftsName + "\" USING fts5(" + columns +
+                    "content=\"" + tableName + "\", content_rowid=\"RowId\", tokenize=\"trigram\");");
+            //  Populate the whole index from the content table in one pass
+            statement.executeUpdate("INSERT INTO \"" + ftsName + "\"(\"" + ftsName + "\") VALUES('rebuild');");
+        });
+    }
+
+    /**
+     * Runs an index build in its own transaction, taking the write lock up front so the reported build time
+     * doesn't include waiting on other tables' builds. The time spent waiting is reported separately.
+     */
+    private Result buildLocked(Connection connection, String tableName, List<String> columnNames,
+                               String indexName, Kind kind, SqlWork work) {
+        long waitStart = System.currentTimeMillis();
+        long startTime = waitStart;
+        writeLock.lock();
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("BEGIN IMMEDIATE;");
+            startTime = System.currentTimeMillis();
+            try {
+                work.run(statement);
+                statement.execute("COMMIT;");
+            } catch (SQLException e) {
+                try {
+                    statement.execute("ROLLBACK;");
+                } catch (SQLException e1) {
+                    e.addSuppressed(e1);
+                }
+                throw e;
+            }
+            return new Result(tableName, columnNames, indexName, kind, startTime - waitStart,
+                    System.currentTimeMillis() - startTime, null);
+        } catch (SQLException | RuntimeException e) {
+            return new Result(tableName, columnNames, indexName, kind, startTime - waitStart,
+                    System.currentTimeMillis() - startTime, e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private interface SqlWork {
+        void run(Statement statement) throws SQLException;
+    }
+
+    public enum Kind {
+        FULL_TEXT,
+        BTREE,
+        /**
+         * The table or column could not be inspected, so no index was attempted
+         */
+        SETUP
+    }
+
+    public static class Result {
+        public final String tableName;
+        public final List<String> columnNames;
+        /**
+         * Null for {@link Kind#SETUP} failures
+         */
+        public final String indexName;
+        public final Kind kind;
+        public final long waitMillis;
+        public final long millis;
+        public final Throwable error;
+
+        Result(String tableName, List<String> columnNames, String indexName, Kind kind, long waitMillis,
+               long millis, Throwable error) {
+            this.tableName = tableName;
+            this.columnNames = columnNames;
+            this.indexName = indexName;
+            this.kind = kind;
+            this.waitMillis = waitMillis;
+            this.millis = millis;
+            this.error = error;
+        }
+
+        static Result setupFailure(String tableName, String columnName, Throwable error) {
+            return new Result(tableName, Collections.singletonList(columnName), null, Kind.SETUP, 0, 0, error);
+        }
+
+        public boolean isOk() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("table=%s columns=%s index=%s kind=%s waited=%dms took=%dms%s",
+                    tableName, columnNames, indexName, kind.name(), waitMillis, millis,
+                    error == null ? "" : " error=" + error);
+        }
+    }
+}